@@ -1,20 +1,34 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 //  Coordinator <port> <parts> [<option>]
 public class Coordinator {
 
+    private static final int ELECTIONS = Integer.parseInt(System.getProperty("elections", "1"));   // Number of elections run from the command line
+    private static final int BATCH = Integer.parseInt(System.getProperty("batch", "1"));           // Max number of proposals voted on in one exchange
+    private static final boolean VERBOSE = Boolean.parseBoolean(System.getProperty("verbose", "true"));   // Logs every message sent and received
+
     private volatile int MAX_PARTICIPANTS;
-    private volatile int participantsCount;                         // Counts the number of participants that has been connected
-    private Map<Socket,String> socketPortsMap = new HashMap<>();    // Maps the socket of participant with port of participant
+    private Map<String,Socket> portSocketsMap = new ConcurrentHashMap<>();     // Maps the port of participant with socket of participant
     private String optionsString;                                   // String containing the options to be voted
+    private String detailsString;                                   // DETAILS message listing every participant of the round
+    private Map<String,Integer> detailsOffsets;                     // Index of each participant's " <port>" in detailsString
+    private BlockingQueue<Proposal> proposals = new LinkedBlockingQueue<>();   // Proposals waiting for an election
+    private Thread coordinatorThread;                               // Thread running the coordinator loop
+    private volatile boolean closing;                               // Set once the coordinator is closed
+    private volatile Throwable failure;                             // Set if the coordinator loop stopped on an error
+    private volatile List<Proposal> undecided;                      // Proposals of the current election still being voted on
     private ServerSocket listener;                                  // Listener socket for the coordinator
-    private volatile Map<String,OutcomeToken> result;                     // Map of port to their voted option
-    private volatile int resultCount;                               // Number of threads that has received a result
-    private volatile String winner;                                 // winner of the votes
-    private volatile ArrayList<String> tiedOptions;                 // Stores the options that were tied for every participant
-    private volatile ArrayList<String> failedParticipants = new ArrayList<>();  // Stores a list of failed participants
+    private volatile RoundState round;                              // Outcomes and counts of the round being voted on
+    private volatile boolean restart;                               // Set if some proposals of the round were not decided
+    private volatile int roundsStarted;                             // Number of rounds of voting sent to the participants
+    private volatile int roundsDecided;                             // Number of rounds of voting that have a winner
+    private Set<String> failedParticipants = ConcurrentHashMap.newKeySet();    // Stores the failed participants
+    private List<Double> electionTimes = Collections.synchronizedList(new ArrayList<>());  // Time each decided election took, in ms
+    List<Long> collectedTimes = Collections.synchronizedList(new ArrayList<>());    // System.nanoTime() at which each round's outcomes were all in
 
     public static void main(String[] args) {
 
@@ -28,8 +42,24 @@ public class Coordinator {
                 options.add(args[i]);
             }
 
-            Coordinator c = new Coordinator(port, parts, options);
-            c.startListening();
+            Coordinator c = new Coordinator(port, parts);
+
+            // options are checked before the coordinator starts listening
+            ArrayList<CompletableFuture<Decision>> decisions = new ArrayList<>();
+            for(int i = 0; i < ELECTIONS; i++) {
+                decisions.add(c.submit(options));
+            }
+            c.start();
+            try {
+                for(CompletableFuture<Decision> decision : decisions) {
+                    decision.join();
+                }
+                c.reportElectionTimes();
+            } catch(CompletionException e) {
+                System.out.println(String.format("Coordinator: [ERROR] Election failed: %s",e.getCause()));
+            }
+
+            c.close();
 
         } catch(IOException e) {
             e.printStackTrace();
@@ -41,146 +71,504 @@ public class Coordinator {
      * Constructor for the coordinator
      * @param port          Port of this coordinator
      * @param max           Max number of participants
-     * @param options       The options that are going to be voted
      * @throws IOException
      */
-    private Coordinator(int port, int max, ArrayList<String> options) throws IOException {
+    public Coordinator(int port, int max) throws IOException {
         this.MAX_PARTICIPANTS = max;
-        this.listener = new ServerSocket(port);
+        this.listener = MessageWriter.listen(port);
+        TraceRecorder.open("coordinator");
+    }
+
+    /**
+     * Constructor for a coordinator without sockets, used to replay traces
+     */
+    private Coordinator() {
+    }
 
-        StringBuilder voteOptions = new StringBuilder("VOTE_OPTIONS");
+    /**
+     * Feeds the messages of a recorded trace through the tokenizer and the tally of the outcomes
+     * Checks that every round is decided as it was when the trace was recorded
+     * @param records   the messages recorded by a coordinator
+     * @return the number of rounds replayed
+     */
+    static int replay(List<TraceRecorder.Record> records) {
+
+        Coordinator c = new Coordinator();
+        CoordinatorTokenizer tokenizer = c.new CoordinatorTokenizer();
+        Map<String,Integer> slots = new HashMap<>();         // slot of every participant, in the order they joined
+        int rounds = 0;
+
+        for(TraceRecorder.Record record : records) {
+            if(record.direction == TraceRecorder.RECEIVED && !slots.containsKey(record.peer)) slots.put(record.peer, slots.size());
+        }
+        c.MAX_PARTICIPANTS = slots.size();
+        c.resetRound();
+
+        for(TraceRecorder.Record record : records) {
+            if(record.direction == TraceRecorder.RECEIVED) {
+                Token token = tokenizer.getToken(record.message);
+                if(token instanceof OutcomeToken) {
+                    c.updateResults(slots.get(record.peer), (OutcomeToken) token);
+                    c.updateResultCount();
+                }
+            } else if(c.round.resultCount.get() > 0 && (record.message.equals("RESTART") || record.message.equals("FINISH"))) {
+                // the first RESTART or FINISH sent ends the round
+                String decided = "FINISH";
+                for(String outcome : c.tallyResults().outcomes) {
+                    if(outcome == null || outcome.equals("TIE")) decided = "RESTART";
+                }
+                if(!decided.equals(record.message))
+                    System.out.println(String.format("Replay: [ERROR] Round %d replayed as %s but was recorded as %s",rounds+1,decided,record.message));
+                c.resetRound();
+                rounds++;
+            }
+        }
+        return rounds;
+
+    }
+
+    /**
+     * Prints how long the first election took next to the hundredth, or the last if there were fewer,
+     * to show what keeping the participants and their connections between elections saves
+     */
+    private void reportElectionTimes() {
+
+        if(electionTimes.size() < 2) return;
+        int later = Math.min(100, electionTimes.size());
+        System.out.println(String.format("Coordinator: [INFO] Election 1 took %.3f ms, election %d took %.3f ms",
+                electionTimes.get(0),later,electionTimes.get(later - 1)));
+
+    }
+
+    /**
+     * Starts the coordinator loop on its own thread
+     * Proposals can be submitted before the participants have joined
+     */
+    public void start() {
+
+        coordinatorThread = new Thread(() -> {
+            try {
+                startListening();
+            } catch(Throwable e) {
+                if(closing) return;
+                e.printStackTrace();
+                stop(e);
+            }
+        });
+        coordinatorThread.start();
+
+    }
+
+    /**
+     * Queues a proposal for an election on the participants
+     * Proposals are decided one after another on the same participants, up to -Dbatch of them in one exchange
+     * @param options       The options that are going to be voted, no duplicates, without spaces, commas, | or _ and not containing TIE
+     * @return future of the decision, completed exceptionally if the coordinator is closed first
+     */
+    public CompletableFuture<Decision> submit(Collection<String> options) {
+
+        if(options.isEmpty()) throw new IllegalArgumentException("No options to vote on");
+        if(closing) throw new IllegalStateException("Coordinator is closed");
+        if(failure != null) throw new IllegalStateException("Coordinator has stopped", failure);
+
+        StringBuilder voteOptions = new StringBuilder();
         for(String option : options) {
-            voteOptions.append(" ").append(option);
+            // the OUTCOME message separates tied options with _ and marks ties with TIE
+            if(option.isEmpty() || option.matches(".*[\\s,|_].*") || option.contains("TIE"))
+                throw new IllegalArgumentException("Option cannot be empty, contain spaces, commas, | or _, or contain TIE: '" + option + "'");
+            if(voteOptions.length() > 0) voteOptions.append(" ");
+            voteOptions.append(option);
+        }
+
+        Proposal proposal = new Proposal(voteOptions.toString());
+        proposals.add(proposal);
+
+        // the coordinator may have been closed, or the loop stopped, while the proposal was added
+        Throwable stopped = failure;
+        if(stopped == null && closing) stopped = new IllegalStateException("Coordinator is closed");
+        if(stopped != null && proposals.remove(proposal)) proposal.decision.completeExceptionally(stopped);
+        return proposal.decision;
+
+    }
+
+    /**
+     * Stops the coordinator once the current election is decided
+     * The participants' connections are closed and proposals still queued are failed
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        closing = true;
+        if(coordinatorThread != null) coordinatorThread.interrupt();
+        synchronized(this) {
+            notifyAll();
         }
-        optionsString = voteOptions.toString();
+        listener.close();
+
+        for(Proposal proposal = proposals.poll(); proposal != null; proposal = proposals.poll()) {
+            proposal.decision.completeExceptionally(new IllegalStateException("Coordinator is closed"));
+        }
+
+    }
+
+    /**
+     * Fails every proposal not yet decided after the coordinator loop stopped on an error
+     * The threads waiting for the loop are released so the participants' connections are closed
+     * @param e     the error that stopped the loop
+     */
+    private void stop(Throwable e) {
+
+        failure = e;
+        synchronized(this) {
+            notifyAll();
+        }
+
+        List<Proposal> current = undecided;
+        if(current != null) {
+            for(Proposal proposal : current) {
+                proposal.decision.completeExceptionally(e);
+            }
+        }
+        for(Proposal proposal = proposals.poll(); proposal != null; proposal = proposals.poll()) {
+            proposal.decision.completeExceptionally(e);
+        }
+
     }
 
     /**
      * Starts the coordinator loop
-     * Sends values to participants
-     * Collects the values and outputs the result if not a tie
+     * Takes the next proposal and sends values to participants
+     * Collects the values and completes the proposal with the result if not a tie
      * Restarts if tie
      * @throws IOException
      */
     private void startListening() throws IOException {
 
-        boolean initial = true;
+        int election = 0;
+        long electionStart = 0;
+        List<Proposal> batch = null;                            // Proposals of the current election
 
-        while(true) {
+        resetRound();
 
-            resultCount = 0;
-            participantsCount = 0;
-            result = new HashMap<>();
-            tiedOptions = new ArrayList<>();
+        for(int slot = 0; round.participantsCount.get() + failedParticipants.size() < MAX_PARTICIPANTS; slot++) {
+            Socket part = listener.accept();
+            new ServerThread(part, slot).start();
+            updateParticipantsCount();
+        }
 
-            while(participantsCount + failedParticipants.size() < MAX_PARTICIPANTS) {
-                if(initial) {
-                    Socket part = listener.accept();
-                    new ServerThread(part).start();
-                    updateParticipantsCount();
+        System.out.println("Coordinator: [INFO] Max participants reached");
+
+        while(true) {
+
+            if(batch == null) {
+                batch = new ArrayList<>();
+                try {
+                    batch.add(proposals.take());
+                } catch(InterruptedException e) {
+                    return;
                 }
+                proposals.drainTo(batch, BATCH - 1);
+                undecided = batch;
+                electionStart = System.nanoTime();
+                election++;
             }
 
-            winner = "";
+            if(closing) {
+                for(Proposal proposal : undecided) {
+                    proposal.decision.completeExceptionally(new IllegalStateException("Coordinator is closed"));
+                }
+                return;
+            }
 
-            if(initial) {
-                System.out.println("Coordinator: [INFO] Max participants reached");
-                initial = false;
+            // the options of every proposal still being voted on, separated by |
+            StringBuilder voteOptions = new StringBuilder("VOTE_OPTIONS");
+            for(int i = 0; i < undecided.size(); i++) {
+                if(i > 0) voteOptions.append(" |");
+                voteOptions.append(" ").append(undecided.get(i).options);
+            }
+            optionsString = voteOptions.toString();
+
+            // every participant is listed once per round, each thread only cuts its own port out of it
+            StringBuilder details = new StringBuilder("DETAILS");
+            Map<String,Integer> offsets = new HashMap<>();
+            for(String p : portSocketsMap.keySet()) {
+                offsets.put(p, details.length());
+                details.append(" ").append(p);
             }
+            detailsString = details.toString();
+            detailsOffsets = offsets;
+
+            // wait for every participant to be ready for the round
+            awaitCount(round.participantsCount);
+
+            long phaseStart = System.nanoTime();
+            startRound();
 
             // wait for all results to get back
-            while(resultCount + failedParticipants.size() < MAX_PARTICIPANTS) {}
+            awaitCount(round.resultCount);
+            collectedTimes.add(System.nanoTime());
+
+            System.out.println(String.format("Coordinator: [INFO] Collected outcomes in %.3f ms",(System.nanoTime() - phaseStart) / 1e6));
 
-            // Remove bad votes
-            Map.Entry<String,OutcomeToken> temp = null;
-            ArrayList<Map.Entry<String,OutcomeToken>> badVotes = new ArrayList<>();
+            OutcomeToken tally = tallyResults();
 
-            for(Map.Entry<String,OutcomeToken> e:result.entrySet()) {
-                if(temp == null) temp = e;
-                else if(temp.getValue().participants.split(" ").length < e.getValue().participants.split(" ").length) {
-                    badVotes.add(temp);
-                    temp = e;
+            if(tally == null) {
+                // every participant failed, no election can be decided on them
+                System.out.println(String.format("Coordinator: [ERROR] Election %d failed, no outcome was received",election));
+                for(Proposal proposal : undecided) {
+                    proposal.decision.completeExceptionally(new IllegalStateException("No outcome was received from the participants"));
                 }
+                resetRound();
+                restart = false;
+                decideRound();
+                batch = null;
+                continue;
             }
 
-            result.entrySet().removeAll(badVotes);
+            List<Proposal> decided = new ArrayList<>();
+            List<Proposal> tied = new ArrayList<>();
+
+            for(int i = 0; i < undecided.size(); i++) {
+                Proposal proposal = undecided.get(i);
+                String outcome = tally.outcomes[i];
+                proposal.rounds++;
+
+                if(outcome == null) {
+                    System.out.println(String.format("Coordinator: [ERROR] Participants decided different outcomes for '%s', voting again",proposal.options));
+                    tied.add(proposal);
+                } else if(outcome.equals("TIE")) {
+                    // only the tied options are voted on again
+                    proposal.options = tally.tiedOptions[i];
+                    tied.add(proposal);
+                } else {
+                    proposal.outcome = outcome;
+                    decided.add(proposal);
+                }
+            }
 
-            // check remaining votes to see if all votes are the same
-            // if not re-vote
-            Map.Entry<String,OutcomeToken> tempWinner = null;
-            boolean revote = false;
+            // reset before the result is published, as the threads start counting participants once they see it
+            resetRound();
+            restart = !tied.isEmpty();
+            decideRound();
 
-            for(Map.Entry<String,OutcomeToken> vote:result.entrySet()){
-                if(tempWinner == null) tempWinner = vote;
-                else if(!tempWinner.getValue().outcome.equals(vote.getValue().outcome)) revote = true;
+            // recorded before the futures are completed, so it is there once the last one is
+            if(tied.isEmpty()) electionTimes.add((System.nanoTime() - electionStart) / 1e6);
 
-                // update tied options
-                if(!vote.getValue().tiedOptions.equals("")) tiedOptions.add(vote.getValue().tiedOptions);
+            List<String> participants = Arrays.asList(tally.participants.split(" "));
+            for(Proposal proposal : decided) {
+                proposal.decision.complete(new Decision(proposal.outcome, proposal.rounds, participants));
             }
 
-            if(!tempWinner.getValue().outcome.equals("TIE") && !revote) {
-                winner = tempWinner.getValue().outcome;
-                System.out.println(String.format("\n\nCoordinator: [INFO] VOTED OUTCOME: %s\n\n",winner));
-                return;
-            } else if(tempWinner.getValue().outcome.equals("TIE")) {
-
-                // Update options from tie
-                String tempOptions = "";
-                for(String s:tiedOptions) {
-                    if(tempOptions.equals(""))
-                        tempOptions = s;
-                    else if(!tempOptions.equals(s))
-                        System.out.println(String.format("Coordinator: [ERROR] Not the same tied options\n\t%s\n\t%s\n\tUsing outcome that involves the most participants",tempOptions,s));
-                }
-                optionsString = "VOTE_OPTIONS " + tempOptions;
+            undecided = tied;
+            if(undecided.isEmpty()) {
+                double elapsed = (System.nanoTime() - electionStart) / 1e9;
+
+                // one summary per election, a batch can hold thousands of proposals
+                Map<String,Integer> outcomes = new TreeMap<>();
+                for(Proposal proposal : batch) outcomes.merge(proposal.outcome, 1, Integer::sum);
+                if(batch.size() == 1) System.out.println(String.format("\n\nCoordinator: [INFO] VOTED OUTCOME: %s\n\n",batch.get(0).outcome));
+                else System.out.println(String.format("Coordinator: [INFO] VOTED OUTCOMES (proposals per option): %s",outcomes));
+                System.out.println(String.format("Coordinator: [INFO] Election %d decided %d proposals in %.3f ms, %.0f decisions per second",
+                        election,batch.size(),elapsed * 1e3,batch.size() / elapsed));
+                batch = null;
             }
+        }
+    }
 
-            winner = tempWinner.getValue().outcome;
+    /**
+     * Tallies the outcomes of a round for every proposal voted on
+     * Removes the outcomes that took fewer participants into account and collects the tied options
+     * @return the outcomes the remaining votes agree on, with a null outcome where they differ, or null if no outcome was received
+     */
+    private OutcomeToken tallyResults() {
+
+        ArrayList<OutcomeToken> result = new ArrayList<>();
+        for(int slot = 0; slot < round.outcomes.length(); slot++) {
+            OutcomeToken token = round.outcomes.get(slot);
+            if(token != null) result.add(token);
+        }
+
+        // Remove bad votes
+        OutcomeToken temp = null;
+        ArrayList<OutcomeToken> badVotes = new ArrayList<>();
+
+        for(OutcomeToken e:result) {
+            if(temp == null) temp = e;
+            else if(temp.participants.split(" ").length < e.participants.split(" ").length) {
+                badVotes.add(temp);
+                temp = e;
+            }
         }
+
+        result.removeAll(badVotes);
+
+        // check remaining votes to see if all votes are the same for each proposal
+        // if not re-vote
+        OutcomeToken tally = null;
+
+        for(OutcomeToken vote:result){
+            if(tally == null) {
+                tally = new OutcomeToken(null, vote.outcomes.clone(), vote.tiedOptions.clone(), vote.participants);
+                continue;
+            }
+
+            for(int i = 0; i < tally.outcomes.length; i++) {
+                if(tally.outcomes[i] == null) continue;
+                if(!tally.outcomes[i].equals(vote.outcomes[i])) tally.outcomes[i] = null;
+                else if(!tally.tiedOptions[i].equals(vote.tiedOptions[i]))
+                    System.out.println(String.format("Coordinator: [ERROR] Not the same tied options\n\t%s\n\t%s\n\tUsing outcome that involves the most participants",tally.tiedOptions[i],vote.tiedOptions[i]));
+            }
+        }
+
+        return tally;
+
     }
 
     /**
-     * Synchronized method to add socket and port to socketPort
+     * Synchronized method to let the threads send the next round to the participants
+     */
+    synchronized private void startRound() {
+        roundsStarted++;
+        notifyAll();
+    }
+
+    /**
+     * Synchronized method to wait until a round is started
+     * @param round the round to wait for
+     * @return false if the coordinator was closed or stopped instead
+     */
+    synchronized private boolean awaitRound(int round) {
+
+        while(roundsStarted < round && !closing && failure == null) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return false;
+            }
+        }
+        return roundsStarted >= round;
+
+    }
+
+    /**
+     * Synchronized method to wake the threads waiting for the result of the round
+     */
+    synchronized private void decideRound() {
+        roundsDecided++;
+        notifyAll();
+    }
+
+    /**
+     * Synchronized method to wait until a round is decided
+     * @param round the round to wait for
+     * @return false if the coordinator stopped or the thread was interrupted instead
+     */
+    synchronized private boolean awaitDecision(int round) {
+
+        while(roundsDecided < round && failure == null) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return false;
+            }
+        }
+        return roundsDecided >= round;
+
+    }
+
+    /**
+     * Synchronized method to wait until every participant that has not failed is counted
+     * Only the thread completing the count and the failing threads wake the coordinator, the others do not take the lock
+     * Keeps waiting if interrupted, as close() lets the current election be decided
+     * @param count     participantsCount or resultCount of the current round
+     */
+    synchronized private void awaitCount(AtomicInteger count) {
+
+        boolean interrupted = false;
+        while(count.get() + failedParticipants.size() < MAX_PARTICIPANTS) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+
+    }
+
+    /**
+     * Synchronized method to wake the coordinator waiting in awaitCount
+     */
+    synchronized private void wakeCoordinator() {
+        notifyAll();
+    }
+
+    /**
+     * Resets the values for a new round of voting
+     */
+    private void resetRound() {
+        round = new RoundState(MAX_PARTICIPANTS);
+    }
+
+    /**
+     * Adds socket and port to portSocketsMap
      * @param socket    socket of the participant you want to add
      * @param port      port of the participant
      */
-    synchronized private void updateSocketPortMap(Socket socket, String port) {
+    private void updateSocketPortMap(Socket socket, String port) {
 
-        socketPortsMap.put(socket,port);
+        portSocketsMap.put(port,socket);
 
     }
 
     /**
-     * Synchronized method to update results received
-     * @param port port of participant
+     * Stores the result received in the slot of the participant's thread
+     * @param slot slot of the participant
      * @param token outcome token of the participant
      */
-    synchronized private void updateResults(String port, OutcomeToken token){
-        result.put(port, token);
+    private void updateResults(int slot, OutcomeToken token){
+        round.outcomes.set(slot, token);
     }
 
     /**
-     * Adds one to resultCount
+     * Adds one to resultCount, waking the coordinator if it was the last result
      */
-    synchronized private void updateResultCount(){
-        resultCount++;
+    private void updateResultCount(){
+        if(round.resultCount.incrementAndGet() + failedParticipants.size() >= MAX_PARTICIPANTS) wakeCoordinator();
     }
 
     /**
-     * Adds one to participantsCount
+     * Adds one to participantsCount, waking the coordinator if it was the last participant
      */
-    synchronized private void updateParticipantsCount() {
-        participantsCount++;
+    private void updateParticipantsCount() {
+        if(round.participantsCount.incrementAndGet() + failedParticipants.size() >= MAX_PARTICIPANTS) wakeCoordinator();
     }
 
-    synchronized private void updateFailedParticipants(String port){
+    /**
+     * Marks a participant as failed and removes it from portSocketsMap
+     * @param port      port of the participant
+     */
+    private void updateFailedParticipants(String port){
         failedParticipants.add(port);
-        for(Map.Entry<Socket,String> e:socketPortsMap.entrySet()) {
-            if(e.getValue().equals(port)) {
-                socketPortsMap.remove(e.getKey());
-                return;
-            }
+        portSocketsMap.remove(port);
+        wakeCoordinator();
+    }
+
+    /**
+     * Outcomes and counts of one round of voting
+     * Every thread writes its outcome to its own slot, so results are recorded without a shared lock
+     * A new RoundState is made before each round is published, so a thread only sees the round it is in
+     */
+    private class RoundState {
+
+        private final AtomicReferenceArray<OutcomeToken> outcomes;          // Outcome of each participant, by slot
+        private final AtomicInteger resultCount = new AtomicInteger();      // Number of threads that has received a result
+        private final AtomicInteger participantsCount = new AtomicInteger();    // Number of participants ready for the round
+
+        RoundState(int slots) {
+            this.outcomes = new AtomicReferenceArray<>(slots);
         }
+
     }
 
     /**
@@ -189,27 +577,32 @@ public class Coordinator {
     private class ServerThread extends Thread {
 
         private volatile BufferedReader partIn;
-        private PrintWriter partOut;
+        private MessageWriter partOut;
         private String port;
+        private int slot;                   // Index of this participant in the round's outcomes
 
         /**
          * Constructor of the thread
          * @param part The socket of the participant this thread is linked to
+         * @param slot Index of the participant in the round's outcomes
          * @throws IOException
          */
-        ServerThread(Socket part) throws IOException {
+        ServerThread(Socket part, int slot) throws IOException {
 
+            this.slot = slot;
             this.partIn = new BufferedReader( new InputStreamReader(part.getInputStream()));
-            this.partOut = new PrintWriter( new OutputStreamWriter(part.getOutputStream()));
 
             // get join message
-            Token token = new CoordinatorTokenizer().getToken(partIn.readLine());
+            String joinLine = partIn.readLine();
+            Token token = new CoordinatorTokenizer().getToken(joinLine);
             if(token instanceof JoinToken) port = ((JoinToken) token).port;
+            TraceRecorder.received(port, joinLine);
 
+            this.partOut = new MessageWriter(part, port);
 
             updateSocketPortMap(part,port);
 
-            System.out.println(String.format("Coordinator: [INFO] received '%s' from %s",token.request,port));
+            if(VERBOSE) System.out.println(String.format("Coordinator: [INFO] received '%s' from %s",token.request,port));
 
         }
 
@@ -220,29 +613,30 @@ public class Coordinator {
 
             try {
 
+                int round = 0;
+
                 // send details to participants
                 while(true) {
 
-                    while(participantsCount + failedParticipants.size() < MAX_PARTICIPANTS) {}
+                    round++;
 
-                    StringBuilder detailsString = new StringBuilder("DETAILS");
+                    if(!awaitRound(round)) break;
 
-                    for (Map.Entry<Socket, String> e : socketPortsMap.entrySet()) {
-                        if (!e.getValue().equals(port)){
-                            detailsString.append(" ").append(e.getValue());
-                        }
+                    String details = detailsString;
+                    Integer offset = detailsOffsets.get(port);
+                    if(offset != null) {
+                        details = details.substring(0, offset) + details.substring(offset + 1 + port.length());
                     }
 
-                    partOut.println(detailsString);
-                    partOut.flush();
-
-                    System.out.println(String.format("Coordinator: [INFO] sent '%s' to %s", detailsString, port));
-
-                    // send vote options to participants
+                    // details and vote options (and a pending RESTART) go out in one write
+                    partOut.println(details);
                     partOut.println(optionsString);
                     partOut.flush();
 
-                    System.out.println(String.format("Coordinator: [INFO] sent '%s' to %s", optionsString, port));
+                    if(VERBOSE) {
+                        System.out.println(String.format("Coordinator: [INFO] sent '%s' to %s", MessageWriter.abbreviate(details), port));
+                        System.out.println(String.format("Coordinator: [INFO] sent '%s' to %s", MessageWriter.abbreviate(optionsString), port));
+                    }
 
                     String outcomeLine = partIn.readLine();
                     if(outcomeLine == null) {
@@ -250,40 +644,99 @@ public class Coordinator {
                         updateFailedParticipants(port);
                         return;
                     }
+                    TraceRecorder.received(port, outcomeLine);
                     Token token = new CoordinatorTokenizer().getToken(outcomeLine);
 
-                    System.out.println(String.format("Coordinator: [INFO] received '%s' from %s", token.request, port));
+                    if(VERBOSE) System.out.println(String.format("Coordinator: [INFO] received '%s' from %s", MessageWriter.abbreviate(outcomeLine), port));
 
                     if (token instanceof OutcomeToken) {
-                        updateResults(port, (OutcomeToken) token);
+                        updateResults(slot, (OutcomeToken) token);
                         updateResultCount();
                     }
 
-                    while(winner.equals("")) {}
+                    if(!awaitDecision(round)) break;
 
-                    if(!winner.equals("TIE")) break;
-                    else {
+                    if(restart) {
                         partOut.println("RESTART");
+                        if(VERBOSE) System.out.println(String.format("Coordinator: [INFO] Sent 'RESTART' to %s",port));
+                    } else {
+                        // Send finish message to part, it stays for the next election if it is a daemon
+                        partOut.println("FINISH");
                         partOut.flush();
-                        System.out.println(String.format("Coordinator: [INFO] Sent 'RESTART' to %s",port));
-                        updateParticipantsCount();
+                        if(VERBOSE) System.out.println(String.format("Coordinator: [INFO] Sent 'FINISH' to %s",port));
                     }
+                    updateParticipantsCount();
                 }
 
-                // Send finish message to part
-                partOut.println("FINISH");
-                partOut.flush();
-                System.out.println(String.format("Coordinator: [INFO] Sent 'FINISH' to %s",port));
+                partOut.close();
             } catch(SocketTimeoutException e) {
                 System.out.println(String.format("Coordinator: [ERROR] Could not get reply from %s",port));
-                updateResultCount();
+                updateFailedParticipants(port);
+                partOut.close();
             } catch(IOException e) {
-                e.printStackTrace();
+                // e.g. the connection was reset, the participant is gone and no longer counted on
+                System.out.println(String.format("Coordinator: [ERROR] Lost connection to %s: %s",port,e.getMessage()));
+                updateFailedParticipants(port);
+                partOut.close();
             }
         }
 
     }
 
+    /**
+     * Decision of an election, given to the future of the proposal
+     */
+    public static class Decision {
+
+        private final String outcome;
+        private final int rounds;
+        private final List<String> participants;
+
+        Decision(String outcome, int rounds, List<String> participants) {
+            this.outcome = outcome;
+            this.rounds = rounds;
+            this.participants = Collections.unmodifiableList(participants);
+        }
+
+        /**
+         * @return the option voted by the majority
+         */
+        public String getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return the number of rounds of voting, more than 1 if there were ties
+         */
+        public int getRounds() {
+            return rounds;
+        }
+
+        /**
+         * @return the ports of the participants taken into account in the outcome
+         */
+        public List<String> getParticipants() {
+            return participants;
+        }
+
+    }
+
+    /**
+     * Options waiting to be voted on and the future of their decision
+     */
+    private class Proposal {
+
+        private String options;                 // Options still being voted on, separated by spaces
+        private String outcome;
+        private int rounds;
+        private CompletableFuture<Decision> decision = new CompletableFuture<>();
+
+        Proposal(String options) {
+            this.options = options;
+        }
+
+    }
+
     /**
      * Tokenizer class to parse the received messages
      */
@@ -298,12 +751,16 @@ public class Coordinator {
             if(firstToken.equals("JOIN")) return new JoinToken(request,sTok.nextToken());
             else if(firstToken.equals("OUTCOME")) {
 
-                String winner = sTok.nextToken();
-                String tied = "";
+                // one outcome per proposal, separated by commas
+                String[] outcomes = sTok.nextToken().split(",");
+                String[] tied = new String[outcomes.length];
 
-                if(winner.contains("TIE")) {
-                    tied = winner.split("TIE_")[1].replace("_"," ");
-                    winner = "TIE";
+                for(int i = 0; i < outcomes.length; i++) {
+                    tied[i] = "";
+                    if(outcomes[i].startsWith("TIE_")) {
+                        tied[i] = outcomes[i].substring("TIE_".length()).replace("_"," ");
+                        outcomes[i] = "TIE";
+                    }
                 }
 
                 StringBuilder participants = new StringBuilder(sTok.nextToken());
@@ -311,7 +768,7 @@ public class Coordinator {
                 while(sTok.hasMoreTokens()){
                     participants.append(" ").append(sTok.nextToken());
                 }
-                return new OutcomeToken(request, winner, tied, participants.toString());
+                return new OutcomeToken(request, outcomes, tied, participants.toString());
             }
             return null;
         }
@@ -335,13 +792,13 @@ public class Coordinator {
 
     class OutcomeToken extends Token {
 
-        String outcome;
+        String[] outcomes;
         String participants;
-        String tiedOptions;
+        String[] tiedOptions;
 
-        OutcomeToken(String request, String outcome, String tiedOptions, String participants) {
+        OutcomeToken(String request, String[] outcomes, String[] tiedOptions, String participants) {
             this.request = request;
-            this.outcome = outcome;
+            this.outcomes = outcomes;
             this.participants = participants;
             this.tiedOptions = tiedOptions;
         }
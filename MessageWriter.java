@@ -0,0 +1,139 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * Output layer shared by the coordinator and the participants
+ * Sets the socket options explicitly and coalesces the messages of one phase into a single write
+ *
+ * The behaviour can be changed with system properties, e.g. java -Dcoalesce=false Coordinator ...
+ *      coalesce        gather messages until flush() is called (default true)
+ *      tcpNoDelay      disables Nagle's algorithm (default true)
+ *      keepAlive       enables TCP keep-alive (default true)
+ *      sendBuffer      socket send buffer size in bytes (default left to the kernel's autotuning)
+ *      receiveBuffer   socket receive buffer size in bytes (default left to the kernel's autotuning)
+ */
+class MessageWriter {
+
+    private static final boolean COALESCE = Boolean.parseBoolean(System.getProperty("coalesce", "true"));
+    private static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("tcpNoDelay", "true"));
+    private static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty("keepAlive", "true"));
+    // a buffer size set explicitly turns off the kernel's autotuning of that buffer, so they are only set when given
+    private static final Integer SEND_BUFFER = Integer.getInteger("sendBuffer");
+    private static final Integer RECEIVE_BUFFER = Integer.getInteger("receiveBuffer");
+
+    private PrintWriter out;
+    private String peer;                // Port of the participant written to, or "coordinator", for the trace
+
+    /**
+     * Constructor for the writer, also configures the socket
+     * @param socket        Socket the messages are written to
+     * @param peer          Port of the participant written to, or "coordinator"
+     * @throws IOException
+     */
+    MessageWriter(Socket socket, String peer) throws IOException {
+
+        configure(socket);
+        this.peer = peer;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+
+    }
+
+    /**
+     * Sets the socket options used for vote and control traffic
+     * @param socket    the socket to configure
+     * @throws SocketException
+     */
+    static void configure(Socket socket) throws SocketException {
+
+        socket.setTcpNoDelay(TCP_NO_DELAY);
+        socket.setKeepAlive(KEEP_ALIVE);
+        if(SEND_BUFFER != null) socket.setSendBufferSize(SEND_BUFFER);
+        if(RECEIVE_BUFFER != null) socket.setReceiveBufferSize(RECEIVE_BUFFER);
+
+    }
+
+    /**
+     * Opens a socket to a listener, configured before connecting
+     * Receive buffers above 64 KB only take effect if set before the connection is set up
+     * @param host      host of the listener
+     * @param port      port of the listener
+     * @return the connected socket
+     * @throws IOException
+     */
+    static Socket connect(InetAddress host, int port) throws IOException {
+
+        Socket socket = new Socket();
+        configure(socket);
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+
+    }
+
+    /**
+     * Opens a listener with the receive buffer set before binding, so accepted sockets start with it
+     * @param port      port to listen on
+     * @return the bound listener
+     * @throws IOException
+     */
+    static ServerSocket listen(int port) throws IOException {
+
+        ServerSocket listener = new ServerSocket();
+        if(RECEIVE_BUFFER != null) listener.setReceiveBufferSize(RECEIVE_BUFFER);
+        listener.bind(new InetSocketAddress(port));
+        return listener;
+
+    }
+
+    /**
+     * Shortens a message for the log, as votes and outcomes of a large batch run to many kilobytes
+     * @param message   the message
+     * @return the message, or its start and length if it is longer than 80 characters
+     */
+    static String abbreviate(String message) {
+
+        if(message == null || message.length() <= 80) return message;
+        return String.format("%s... (%d bytes)", message.substring(0, 60), message.length());
+
+    }
+
+    /**
+     * Adds a message to the current write, sends it straight away if coalescing is off
+     * @param message   the message to send
+     */
+    void println(String message) {
+
+        TraceRecorder.sent(peer, message);
+        out.println(message);
+        if(!COALESCE) out.flush();
+
+    }
+
+    /**
+     * Sends the messages gathered since the last flush in one write
+     */
+    void flush() {
+
+        out.flush();
+
+    }
+
+    /**
+     * Checks whether a write to the socket has failed
+     * @return true if the socket can no longer be written to
+     */
+    boolean checkError() {
+
+        return out.checkError();
+
+    }
+
+    /**
+     * Sends anything gathered and closes the socket
+     */
+    void close() {
+
+        out.close();
+
+    }
+
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+//  OutcomeStress <port> <participants> [<elections>]
+public class OutcomeStress {
+
+    public static void main(String[] args) {
+
+        // the per-message log would serialize the threads on System.out
+        if(System.getProperty("verbose") == null) System.setProperty("verbose", "false");
+
+        try {
+
+            int port = Integer.parseInt(args[0]);
+            int parts = Integer.parseInt(args[1]);
+            int elections = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+            Coordinator c = new Coordinator(port, parts);
+            ArrayList<CompletableFuture<Coordinator.Decision>> decisions = new ArrayList<>();
+            for(int i = 0; i < elections; i++) {
+                decisions.add(c.submit(Arrays.asList("A", "B")));
+            }
+            c.start();
+
+            // every simulated participant joins at once, and holds its OUTCOME until all of them have one
+            // so the replies of a round are released together
+            List<Long> releaseTimes = Collections.synchronizedList(new ArrayList<>());
+            CyclicBarrier release = new CyclicBarrier(parts, () -> releaseTimes.add(System.nanoTime()));
+            for(int i = 1; i <= parts; i++) {
+                Thread participant = new SimulatedParticipant(port, port + i, release);
+                participant.setDaemon(true);
+                participant.start();
+            }
+
+            // timed from the release of a round's replies to the coordinator having all of them
+            int round = 0;
+            for(int i = 0; i < elections; i++) {
+                Coordinator.Decision decision = decisions.get(i).join();
+                long collecting = 0;
+                for(int r = 0; r < decision.getRounds(); r++, round++) {
+                    collecting += c.collectedTimes.get(round) - releaseTimes.get(round);
+                }
+                int outcomes = parts * decision.getRounds();
+                System.out.println(String.format("Stress: [INFO] Election %d decided %s, collected %d OUTCOMEs in %.3f ms after their release, %.0f OUTCOMEs per second",
+                        i+1,decision.getOutcome(),outcomes,collecting / 1e6,outcomes / (collecting / 1e9)));
+            }
+
+            c.close();
+
+        } catch(IOException | CompletionException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * A participant that does not vote with the others, it reports the first option of every proposal
+     * once every participant has its reply for the round
+     * Only the coordinator's side of the exchange is exercised
+     */
+    private static class SimulatedParticipant extends Thread {
+
+        private int coordinatorPort;
+        private int ownPort;
+        private CyclicBarrier release;      // Shared by all participants, the replies of a round go out once every one has its reply
+
+        SimulatedParticipant(int coordinatorPort, int ownPort, CyclicBarrier release) {
+            this.coordinatorPort = coordinatorPort;
+            this.ownPort = ownPort;
+            this.release = release;
+        }
+
+        public void run() {
+
+            try(Socket socket = MessageWriter.connect(InetAddress.getLocalHost(), coordinatorPort)) {
+
+                MessageWriter out = new MessageWriter(socket, "coordinator");
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                out.println("JOIN " + ownPort);
+                out.flush();
+
+                for(String line = in.readLine(); line != null; line = in.readLine()) {
+                    if(!line.startsWith("VOTE_OPTIONS")) continue;
+
+                    StringBuilder outcomes = new StringBuilder();
+                    for(String options : line.substring("VOTE_OPTIONS ".length()).split(" \\| ")) {
+                        if(outcomes.length() > 0) outcomes.append(",");
+                        outcomes.append(options.split(" ")[0]);
+                    }
+                    String outcomeLine = String.format("OUTCOME %s %d", outcomes, ownPort);
+
+                    release.await();
+                    out.println(outcomeLine);
+                    out.flush();
+                }
+
+            } catch(IOException e) {
+                System.out.println(String.format("Stress: [ERROR] Participant %d lost the coordinator",ownPort));
+                // the others would wait for its reply forever
+                release.reset();
+            } catch(InterruptedException | BrokenBarrierException e) {
+                System.out.println(String.format("Stress: [ERROR] Participant %d was not released",ownPort));
+            }
+
+        }
+
+    }
+
+}
@@ -5,17 +5,26 @@ import java.util.*;
 //Participant <Coord port> <Self port> <Timeout> <Flag>
 public class Participant {
 
+    private static final int MAX_FAILURES = Integer.parseInt(System.getProperty("maxFailures", "1"));   // Number of participant failures tolerated by the vote
+    private static final int ROUNDS = MAX_FAILURES + 1;         // Number of vote exchange rounds needed to tolerate the failures
+    private static final boolean DAEMON = Boolean.parseBoolean(System.getProperty("daemon", "false"));   // Stay for later elections after FINISH
+
     private ServerSocket listener;
     private int timeOut, flag;
-    private PrintWriter out;
+    private MessageWriter out;
     private BufferedReader in;
     private volatile String[] participants;                     // Participants received from coordinator
     private int ownPort;                                        // Port of this participant
-    private volatile Set<String> participantsReceived;          // Set containing participants that has sent this participant a vote
-    private volatile Map<String,Integer> votesCount;            // Map containing option and its count
-    private volatile ArrayList<Socket> participantSockets;      // ArrayList containing all the participants' sockets
-    private String option;                                      // Option this participant has chosen
-    private volatile StringBuilder voteMessage;
+    private volatile Map<String,Integer> participantRounds;     // Map of participant to the number of rounds it has sent this participant
+    private volatile ArrayList<Map<String,Integer>> votesCount; // Map containing option and its count, for each proposal
+    private volatile Map<String,ReceivingLink> receivingLinks;  // Map of participant to the link its votes are received on
+    private volatile Map<String,MessageWriter> sendingWriters;  // Map of participant to the writer used to send it votes
+    private VoteSelector voteSelector;                          // Chooses the option this participant votes for
+    private String option;                                      // Options this participant has chosen, one per proposal separated by commas
+    private volatile Map<String,String> knownVotes;             // Map of port to vote of every vote this participant knows of
+    private volatile Map<String,String> newVotes;               // Votes learned since the last round, relayed in the next round
+    private volatile Map<String,Set<String>> voteSources;       // Participants each new vote was learned from, it is not relayed back to them
+    private volatile int pendingConnections;                    // Number of accepted connections whose sender is not known yet
     private Socket coordinatorSocket;
     private volatile ArrayList<String> failedParticipants;
 
@@ -27,7 +36,7 @@ public class Participant {
                 Integer.parseInt(args[3]));
 
         // send join message to coordinator
-        PrintWriter out = p.out;
+        MessageWriter out = p.out;
         String message = String.format("JOIN %s",args[1]);
         out.println(message);
         out.flush();
@@ -47,14 +56,17 @@ public class Participant {
      */
     private Participant(int coordinatorPort, int ownPort, int timeOut, int flag) {
 
+        TraceRecorder.open(String.valueOf(ownPort));
+
         try {
-            Socket coordinatorSocket = new Socket(InetAddress.getLocalHost(), coordinatorPort);
+            Socket coordinatorSocket = MessageWriter.connect(InetAddress.getLocalHost(), coordinatorPort);
             this.timeOut = timeOut;
             this.flag = flag;
             this.coordinatorSocket = coordinatorSocket;
-            this.out = new PrintWriter(new OutputStreamWriter(coordinatorSocket.getOutputStream()));
+            this.out = new MessageWriter(coordinatorSocket, "coordinator");
             this.in = new BufferedReader(new InputStreamReader(coordinatorSocket.getInputStream()));
             this.ownPort = ownPort;
+            this.voteSelector = createVoteSelector();
         } catch(UnknownHostException e) {
             System.out.println(String.format("Participant %s: [ERROR] Unknown host",ownPort));
             e.printStackTrace();
@@ -63,83 +75,167 @@ public class Participant {
         }
     }
 
+    /**
+     * Constructor for a participant without sockets, used to replay traces
+     * @param ownPort           Port of this participant
+     */
+    private Participant(int ownPort) {
+        this.ownPort = ownPort;
+    }
+
+    /**
+     * Feeds the messages of a recorded trace through the tokenizer and the tally of the votes
+     * Checks that every outcome is the one sent when the trace was recorded
+     * @param records   the messages recorded by a participant
+     * @param ownPort   port of the participant that recorded the trace
+     * @return the number of outcomes replayed
+     */
+    static int replay(List<TraceRecorder.Record> records, int ownPort) {
+
+        Participant p = new Participant(ownPort);
+        ParticipantTokenizer tokenizer = p.new ParticipantTokenizer();
+        int outcomes = 0;
+
+        p.resetVote();
+
+        for(TraceRecorder.Record record : records) {
+            if(record.peer.equals("coordinator")) {
+                if(record.direction == TraceRecorder.RECEIVED) {
+                    // every round starts with the details from the coordinator
+                    if(tokenizer.getToken(record.message) instanceof DetailsToken) p.resetVote();
+                } else if(record.message.startsWith("OUTCOME")) {
+                    String winner = p.tallyVotes();
+                    String recorded = record.message.split(" ")[1];
+                    if(!winner.equals(recorded))
+                        System.out.println(String.format("Replay: [ERROR] Outcome %d replayed as %s but was recorded as %s",outcomes+1,winner,recorded));
+                    outcomes++;
+                }
+            } else {
+                Token token = tokenizer.getToken(record.message);
+                if(token instanceof VoteToken) {
+                    String source = record.direction == TraceRecorder.RECEIVED ? record.peer : String.valueOf(ownPort);
+                    p.updateKnownVotes(source, ((VoteToken) token).votes);
+                    if(record.direction == TraceRecorder.RECEIVED) p.updateParticipantRounds(record.peer);
+                }
+            }
+        }
+        return outcomes;
+
+    }
+
     /**
      * Starts the participant loop
      * Gets values from coordinator
      * Vote with other participants
      * Share answer with coordinator
+     * The links to the other participants are kept for the following rounds and, as a daemon, elections
      */
     private void startListening() {
 
         try {
 
+            receivingLinks = new HashMap<>();
+            sendingWriters = new HashMap<>();
+
             while(true) {
 
                 // Reset the values for a new loop
                 participants = new String[0];
-                String[] options = new String[0];
-                participantsReceived = new HashSet<>();
-                votesCount = new HashMap<>();
-                participantSockets = new ArrayList<>();
-                listener = new ServerSocket(ownPort);
-                voteMessage = new StringBuilder("VOTE");
-                failedParticipants = new ArrayList<>();
+                String[][] proposals = new String[0][];
+                resetVote();
+
+                // the listener is closed when a participant did not connect, dropping any late connection
+                if(listener == null || listener.isClosed()) {
+                    listener = MessageWriter.listen(ownPort);
+                    listener.setSoTimeout(timeOut);
+                }
 
                 // get details and options from coordinator
-                while (participants.length == 0 || options.length == 0) {
+                while (participants.length == 0 || proposals.length == 0) {
 
-                    Token token = new ParticipantTokenizer().getToken(in.readLine());
+                    String line = in.readLine();
+                    if(line == null) {
+                        System.out.println(String.format("Participant %s: [INFO] Coordinator closed the connection",ownPort));
+                        System.exit(0);
+                    }
+                    TraceRecorder.received("coordinator", line);
+
+                    Token token = new ParticipantTokenizer().getToken(line);
                     if (token instanceof DetailsToken) {
                         String detailsString = ((DetailsToken) token).details;
                         participants = detailsString.split(" ");
 
-                        System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,token.request));
+                        System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,MessageWriter.abbreviate(token.request)));
 
                     } else if (token instanceof OptionsToken) {
-                        String optionsString = ((OptionsToken) token).voteOptions;
-                        options = optionsString.split(" ");
-
-                        System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,token.request));
+                        // the options of each proposal are separated by |
+                        String[] optionsStrings = ((OptionsToken) token).voteOptions.split(" \\| ");
+                        proposals = new String[optionsStrings.length][];
+                        for(int i = 0; i < optionsStrings.length; i++) {
+                            proposals[i] = optionsStrings[i].split(" ");
+                        }
+
+                        System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,MessageWriter.abbreviate(token.request)));
                     }
                 }
 
-                listener.setSoTimeout(timeOut);
-
-                option = options[new Random().nextInt(options.length)];
-                updateVotes(option);
+                dropLinks();
 
-                addVoteMessage(String.valueOf(ownPort),option);
+                option = selectVotes(proposals);
 
-                String message = voteMessage.toString();        // variable to hold vote message for this round
+                Map<String,String> ownVote = new HashMap<>();
+                ownVote.put(String.valueOf(ownPort),option);
+                updateKnownVotes(String.valueOf(ownPort), ownVote);
 
                 new ServerThread().start();
 
-                // communicate with other participants
-                int count = 0;
-                int limit = 0;
-                if(flag == 1 && participants.length > 1)
-                    limit = (new Random().nextInt(participants.length-1)) + 1;
-                for (String p : participants) {
-                    // kill participant from flag 1
-                    if(flag == 1 && count == limit) {
-                        return;
+                // communicate with other participants, relaying only the votes learned in the previous round
+                for(int round = 1; round <= ROUNDS; round++) {
+
+                    Map<String,String> messages = takeVoteMessages();   // vote message of this round for each participant
+                    long roundStart = System.nanoTime();
+
+                    ArrayList<SendingThread> sendingThreads = new ArrayList<>();
+                    int count = 0;
+                    int bytesSent = 0;
+                    int limit = 0;
+                    if(flag == 1 && round == 1 && participants.length > 1)
+                        limit = (new Random().nextInt(participants.length-1)) + 1;
+                    for (String p : participants) {
+                        // kill participant from flag 1
+                        if(flag == 1 && round == 1 && count == limit) {
+                            joinSendingThreads(sendingThreads);
+                            closeSockets();
+                            return;
+                        }
+                        if(!failedParticipants.contains(p)) {
+                            SendingThread sendingThread = new SendingThread(p,messages.get(p));
+                            sendingThread.start();
+                            sendingThreads.add(sendingThread);
+                            bytesSent += messages.get(p).length() + 1;
+                        }
+                        count++;
                     }
-                    new SendingThread(p,message).start();
-                    count++;
-                }
 
-                // wait for all the votes to be received
-                while (participantsReceived.size() + failedParticipants.size()< participants.length) { }
+                    // make sure this round is sent before the sockets are reused or closed
+                    joinSendingThreads(sendingThreads);
+
+                    System.out.println(String.format("Participant %s: [INFO] Round %d sent %d bytes",ownPort,round,bytesSent));
+
+                    // wait for all the votes of this round to be received
+                    awaitRound(round);
+
+                    System.out.println(String.format("Participant %s: [INFO] Round %d completed in %.3f ms",ownPort,round,(System.nanoTime() - roundStart) / 1e6));
+                }
 
                 if(failedParticipants.size() > 0) {
                     String fails = createParticipantsString(failedParticipants.iterator());
                     System.out.println(String.format("Participant %s: [ERROR] Failed to receive votes from %s",ownPort,fails));
                 }
 
-                String winner = getWinner();
+                String winner = tallyVotes();
 
-                participantsReceived.add(String.valueOf(ownPort));
-                String participantsReceivedString = createParticipantsString(participantsReceived.iterator());
+                String participantsReceivedString = createParticipantsString(knownVotes.keySet().iterator());
 
                 // Kill participant from flag 2
                 if(flag == 2) {
@@ -152,11 +248,16 @@ public class Participant {
                 out.println(outcomeString);
                 out.flush();
 
-                System.out.println(String.format("Participant %s: [INFO] Sent '%s' to coordinator",ownPort,outcomeString));
+                System.out.println(String.format("Participant %s: [INFO] Sent '%s' to coordinator",ownPort,MessageWriter.abbreviate(outcomeString)));
 
-                Token token = new ParticipantTokenizer().getToken(in.readLine());
-                System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,token.request));
-                if(token instanceof FinishToken) break;
+                String line = in.readLine();
+                TraceRecorder.received("coordinator", line);
+                Token token = new ParticipantTokenizer().getToken(line);
+                System.out.println(String.format("Participant %s: [INFO] Received '%s' from coordinator",ownPort,MessageWriter.abbreviate(token.request)));
+                if(token instanceof FinishToken) {
+                    if(!DAEMON) break;
+                    System.out.println(String.format("Participant %s: [INFO] Waiting for the next election",ownPort));
+                }
                 else if(!(token instanceof RestartToken)) System.out.println(String.format("Participant (%s): [ERROR] Unknown token",ownPort));
 
             }
@@ -167,6 +268,26 @@ public class Participant {
         System.exit(0);
     }
 
+    /**
+     * Creates the vote selector named by the voteSelector system property, or a random one if none is given
+     * @return the vote selector of this participant
+     */
+    private VoteSelector createVoteSelector() {
+
+        String name = System.getProperty("voteSelector");
+        if(name != null) {
+            try {
+                return (VoteSelector) Class.forName(name).getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException | ClassCastException e) {
+                System.out.println(String.format("Participant %s: [ERROR] Could not load vote selector %s, voting randomly",ownPort,name));
+            }
+        }
+
+        Random random = new Random();
+        return options -> options[random.nextInt(options.length)];
+
+    }
+
     private String createParticipantsString(Iterator<String> it) {
 
         StringBuilder s = new StringBuilder(it.next());
@@ -177,11 +298,63 @@ public class Participant {
 
     }
 
+    /**
+     * Resets the values for a new round of voting
+     */
+    private void resetVote() {
+        participantRounds = new HashMap<>();
+        votesCount = new ArrayList<>();
+        knownVotes = new LinkedHashMap<>();
+        newVotes = new LinkedHashMap<>();
+        voteSources = new HashMap<>();
+        pendingConnections = 0;
+        failedParticipants = new ArrayList<>();
+    }
+
+    /**
+     * Chooses an option for every proposal
+     * @param proposals the options of each proposal
+     * @return the options chosen, separated by commas
+     */
+    private String selectVotes(String[][] proposals) {
+
+        StringBuilder votes = new StringBuilder();
+        for(String[] options : proposals) {
+            if(votes.length() > 0) votes.append(",");
+            votes.append(voteSelector.select(options));
+        }
+        return votes.toString();
+
+    }
+
+    /**
+     * Counts the votes known after the last round
+     * @return returns the winner calculated for each proposal, separated by commas
+     */
+    private String tallyVotes() {
+
+        for(String vote : knownVotes.values()) {
+            String[] choices = vote.split(",");
+            for(int i = 0; i < choices.length; i++) {
+                updateVotes(i, choices[i]);
+            }
+        }
+
+        StringBuilder winners = new StringBuilder();
+        for(Map<String,Integer> proposalCount : votesCount) {
+            if(winners.length() > 0) winners.append(",");
+            winners.append(getWinner(proposalCount));
+        }
+        return winners.toString();
+
+    }
+
     /**
      * Calculates the winner of the round after all the votes have been handed in
+     * @param votesCount map containing option and its count for one proposal
      * @return returns the winner calculated
      */
-    private String getWinner() {
+    private String getWinner(Map<String,Integer> votesCount) {
         Map.Entry<String, Integer> maxCount = null;
         String winner = "";
         StringBuilder tiedOptions = new StringBuilder();
@@ -205,63 +378,293 @@ public class Participant {
 
     /**
      * Synchronized method to update the vote count
-     * @param vote the option that is being updated
+     * @param proposal  index of the proposal voted on
+     * @param vote      the option that is being updated
+     */
+    synchronized private void updateVotes(int proposal, String vote) {
+
+        while(votesCount.size() <= proposal) votesCount.add(new HashMap<>());
+        Map<String,Integer> proposalCount = votesCount.get(proposal);
+
+        if(proposalCount.containsKey(vote)) proposalCount.put(vote,proposalCount.get(vote)+1);
+        else proposalCount.put(vote,1);
+
+    }
+
+    /**
+     * Synchronized method to count a round of votes received from a participant, waking the threads waiting for the round
+     * @param part  port of the participant
+     */
+    synchronized private void updateParticipantRounds(String part) {
+
+        if(participantRounds.containsKey(part)) participantRounds.put(part,participantRounds.get(part)+1);
+        else participantRounds.put(part,1);
+        notifyAll();
+
+    }
+
+    /**
+     * Synchronized method to add a participant that failed during the vote, waking the threads waiting for the round
+     * @param part  port of the participant
+     */
+    synchronized private void updateFailedParticipants(String part) {
+
+        if(!failedParticipants.contains(part)) failedParticipants.add(part);
+        notifyAll();
+
+    }
+
+    /**
+     * Adds to pendingConnections, waking the ServerThread once no connection is pending
+     * @param change    1 when a connection is accepted, -1 when its sender is known or it is lost
+     */
+    synchronized private void updatePendingConnections(int change) {
+        pendingConnections += change;
+        if(pendingConnections == 0) notifyAll();
+    }
+
+    /**
+     * Synchronized method to wait until the sender of every accepted connection is known or the connection is lost
+     */
+    synchronized private void awaitPendingConnections() {
+
+        while(pendingConnections > 0) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return;
+            }
+        }
+
+    }
+
+    /**
+     * Synchronized method to keep the link a participant's votes are received on
+     * @param part  port of the participant
+     * @param link  the link to keep, or null to remove the participant's link
      */
-    synchronized private void updateVotes(String vote) {
+    synchronized private void updateReceivingLinks(String part, ReceivingLink link) {
 
-        if(votesCount.containsKey(vote)) votesCount.put(vote,votesCount.get(vote)+1);
-        else votesCount.put(vote,1);
+        if(link == null) receivingLinks.remove(part);
+        else receivingLinks.put(part, link);
 
     }
 
     /**
-     * Synchronized method to update the participants received
+     * Synchronized method to get the link a participant's votes are received on
      * @param part  port of the participant
+     * @return the link, or null if there is none
+     */
+    synchronized private ReceivingLink getReceivingLink(String part) {
+        return receivingLinks.get(part);
+    }
+
+    /**
+     * Closes the links to participants that are no longer in the vote, and the writers that can no longer be written to
+     */
+    synchronized private void dropLinks() {
+
+        List<String> current = Arrays.asList(participants);
+
+        Iterator<Map.Entry<String,ReceivingLink>> links = receivingLinks.entrySet().iterator();
+        while(links.hasNext()) {
+            Map.Entry<String,ReceivingLink> link = links.next();
+            if(!current.contains(link.getKey())) {
+                link.getValue().close();
+                links.remove();
+            }
+        }
+
+        Iterator<Map.Entry<String,MessageWriter>> writers = sendingWriters.entrySet().iterator();
+        while(writers.hasNext()) {
+            Map.Entry<String,MessageWriter> writer = writers.next();
+            if(!current.contains(writer.getKey()) || writer.getValue().checkError()) {
+                writer.getValue().close();
+                writers.remove();
+            }
+        }
+
+    }
+
+    /**
+     * Synchronized method to add received votes, ignoring the senders whose vote is already known
+     * Remembers who a new vote was learned from until it is relayed
+     * @param source    port of the participant the votes were received from, or this participant's own port
+     * @param votes     map of port to vote
+     */
+    synchronized private void updateKnownVotes(String source, Map<String,String> votes) {
+
+        for(Map.Entry<String,String> vote : votes.entrySet()) {
+            if(!knownVotes.containsKey(vote.getKey())) {
+                knownVotes.put(vote.getKey(),vote.getValue());
+                newVotes.put(vote.getKey(),vote.getValue());
+                voteSources.put(vote.getKey(), new HashSet<>());
+            }
+            if(newVotes.containsKey(vote.getKey())) voteSources.get(vote.getKey()).add(source);
+        }
+
+    }
+
+    /**
+     * Synchronized method to build the vote messages from the votes learned since the last round
+     * A vote is not sent to the participant that cast it or to the participants it was learned from
+     * The own vote is learned first, so it leads the first message to every participant
+     * @return the vote message of this round for each participant
+     */
+    synchronized private Map<String,String> takeVoteMessages() {
+
+        Map<String,String> messages = new HashMap<>();
+        for(String p : participants) {
+            StringBuilder message = new StringBuilder("VOTE");
+            for(Map.Entry<String,String> vote : newVotes.entrySet()) {
+                if(vote.getKey().equals(p) || voteSources.get(vote.getKey()).contains(p)) continue;
+                message.append(" ").append(vote.getKey()).append(" ").append(vote.getValue());
+            }
+            messages.put(p, message.toString());
+        }
+        newVotes = new LinkedHashMap<>();
+        voteSources = new HashMap<>();
+        return messages;
+
+    }
+
+    /**
+     * Checks whether every participant that has not failed has sent its votes for a round
+     * @param round the round to check
+     * @return true if the round has been received from every participant
+     */
+    synchronized private boolean isRoundReceived(int round) {
+
+        for(String p : participants) {
+            if(failedParticipants.contains(p)) continue;
+            if(!participantRounds.containsKey(p) || participantRounds.get(p) < round) return false;
+        }
+        return true;
+
+    }
+
+    /**
+     * Synchronized method to wait until every participant that has not failed has sent its votes for a round
+     * Woken by updateParticipantRounds and updateFailedParticipants
+     * @param round the round to wait for
+     */
+    synchronized private void awaitRound(int round) {
+
+        while(!isRoundReceived(round)) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return;
+            }
+        }
+
+    }
+
+    /**
+     * Waits for the votes of a round to be sent
+     * @param sendingThreads the threads sending the votes of the round
      */
-    synchronized private void updateParticipantsReceived(String part) {
+    private void joinSendingThreads(ArrayList<SendingThread> sendingThreads) {
 
-        participantsReceived.add(part);
+        try {
+            for(SendingThread sendingThread : sendingThreads) {
+                sendingThread.join();
+            }
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
 
     }
 
-    synchronized private void addVoteMessage(String port, String option) {
-        voteMessage.append(" ").append(port).append(" ").append(option);
+    /**
+     * Closes the sockets used to send votes to the other participants
+     */
+    private void closeSockets() {
+
+        for(MessageWriter writer : sendingWriters.values()) {
+            writer.close();
+        }
+
     }
 
     /**
-     * Thread for sending the option this participant has chosen to the other participants
+     * Thread for sending the votes of a round to the other participants
+     * The socket to a participant is opened in the first round and reused in the following rounds
      */
     private class SendingThread extends Thread {
 
-        private Socket socket;
-        private PrintWriter out;
+        private MessageWriter out;
         private String destinationPort;
         private String message;
 
         /**
          * Constructor this thread
          * @param destinationPort   the participant's port this thread is meant to send the vote to
+         * @param message           the vote message of this round
          * @throws IOException
          */
         private SendingThread(String destinationPort, String message) throws IOException {
 
-            this.socket = new Socket(InetAddress.getLocalHost(), Integer.parseInt(destinationPort));
-            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
+            this.out = sendingWriters.get(destinationPort);
+            if(out == null) {
+                out = new MessageWriter(MessageWriter.connect(InetAddress.getLocalHost(), Integer.parseInt(destinationPort)), destinationPort);
+                sendingWriters.put(destinationPort, out);
+            }
             this.destinationPort = destinationPort;
             this.message = message;
 
         }
 
         /**
-         * Sends the vote to the participant
+         * Sends the votes to the participant
          */
         public void run() {
 
-            // choose option
             out.println(message);
             out.flush();
 
-            System.out.println(String.format("Participant %s: [INFO] Sent '%s' to %s",ownPort,message,destinationPort));
+            System.out.println(String.format("Participant %s: [INFO] Sent '%s' to %s",ownPort,MessageWriter.abbreviate(message),destinationPort));
+
+        }
+
+    }
+
+    /**
+     * Hook choosing the option this participant votes for, set with -DvoteSelector=<class name>
+     */
+    interface VoteSelector {
+        String select(String[] options);
+    }
+
+    /**
+     * Connection the votes of another participant are received on, kept between rounds and elections
+     */
+    private class ReceivingLink {
+
+        private Socket socket;
+        private BufferedReader in;
+
+        /**
+         * Constructor for the link
+         * @param socket        Socket from the sender participant
+         * @throws IOException
+         */
+        private ReceivingLink(Socket socket) throws IOException {
+
+            this.socket = socket;
+            MessageWriter.configure(socket);
+            this.socket.setSoTimeout(timeOut * ROUNDS);        // a round may be held up by the sender detecting a failure
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        }
+
+        private void close() {
+
+            try {
+                socket.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
 
         }
 
@@ -269,88 +672,131 @@ public class Participant {
 
     /**
      * Thread for receiving votes from the other participants
+     * Reads one message per round, the sender of a new connection is the first vote of its first round
      */
     private class ReceivingThread extends Thread {
 
-        private Socket threadSocket;
-        private BufferedReader in;
+        private ReceivingLink link;
+        private String part;
 
         /**
-         * Constructor for the thread
+         * Constructor for the thread on a new connection
          * @param socket        Socket from the sender participant
          * @throws IOException
          */
         private ReceivingThread(Socket socket) throws IOException {
 
-            this.threadSocket = socket;
-            this.in = new BufferedReader(new InputStreamReader(threadSocket.getInputStream()));
+            this.link = new ReceivingLink(socket);
+
+        }
+
+        /**
+         * Constructor for the thread on a link kept from an earlier vote
+         * @param part          port of the sender participant
+         * @param link          link to the sender participant
+         */
+        private ReceivingThread(String part, ReceivingLink link) {
+
+            this.part = part;
+            this.link = link;
 
         }
 
         /**
-         * parses the message received and stores the result
+         * parses the messages received and stores the new votes
          */
         public void run() {
 
+            boolean pending = part == null;
+            int round = 0;
+
             try {
-                Token token = new ParticipantTokenizer().getToken(in.readLine());
-
-                if (token instanceof VoteToken) {
-                    String part = ((VoteToken) token).port;
-                    String option = ((VoteToken) token).option;
-                    updateVotes(option);
-                    updateParticipantsReceived(part);
-                    addVoteMessage(part,option);        // Adds received votes into a string builder
-                    System.out.println(String.format("Participant %s: [INFO] Received '%s' from %s",ownPort,token.request,part));
+                while(round < ROUNDS) {
+                    String line = link.in.readLine();
+                    if(line == null) break;
+
+                    Token token = new ParticipantTokenizer().getToken(line);
+                    if (token instanceof VoteToken) {
+                        Map<String,String> votes = ((VoteToken) token).votes;
+                        if(part == null) {
+                            if(votes.isEmpty()) break;
+                            part = votes.keySet().iterator().next();
+                            updateReceivingLinks(part, link);
+                        }
+                        TraceRecorder.received(part, line);
+                        updateKnownVotes(part, votes);
+                        updateParticipantRounds(part);
+                        if(pending) {
+                            updatePendingConnections(-1);
+                            pending = false;
+                        }
+                        round++;
+                        System.out.println(String.format("Participant %s: [INFO] Received '%s' from %s",ownPort,MessageWriter.abbreviate(token.request),part));
+                    }
                 }
+            } catch(SocketTimeoutException e) {
+                // handled below as a failed participant
             } catch(IOException e) {
                 e.printStackTrace();
             }
+
+            if(round < ROUNDS) {
+                if(part != null) {
+                    System.out.println(String.format("Participant %s: [ERROR] Lost connection to %s in round %d",ownPort,part,round+1));
+                    updateFailedParticipants(part);
+                    updateReceivingLinks(part, null);
+                }
+                link.close();
+                if(pending) updatePendingConnections(-1);
+            }
         }
     }
 
 
     /**
-     * Collects all the sockets from the server socket and launches a ReceivingThread for each socket
+     * Starts a ReceivingThread for every kept link, then collects the missing sockets from the server socket
+     * and launches a ReceivingThread for each socket
      */
     private class ServerThread extends Thread {
 
         public void run(){
 
+            int linked = 0;
             int count = 0;
 
+            for(String p:participants) {
+                ReceivingLink link = getReceivingLink(p);
+                if(link != null) {
+                    new ReceivingThread(p, link).start();
+                    linked++;
+                }
+            }
+
             try {
-                while(participantSockets.size() < participants.length) {
+                while(linked + count < participants.length) {
                     Socket socket = listener.accept();
-                    participantSockets.add(socket);
+                    updatePendingConnections(1);
                     new ReceivingThread(socket).start();
                     count++;
                 }
-                listener.close();
             } catch(SocketTimeoutException e){
-
-                // wait for all sockets to receive
-                while(count > participantsReceived.size()) {}
-
-                // add the participants which did not send this participant a reply
-                for(String p:participants){
-                    boolean included = false;
-                    for(String q:participantsReceived){
-                        if(p.equals(q)) included = true;
-                    }
-                    if(!included) failedParticipants.add(p);
-                }
-
                 try {
                     listener.close();
                 } catch (IOException e1) {
                     e1.printStackTrace();
                 }
-
             } catch(IOException e) {
                 e.printStackTrace();
             }
 
+            // wait for all sockets to receive
+            awaitPendingConnections();
+
+            // add the participants which did not send this participant a reply
+            for(String p:participants){
+                if(getReceivingLink(p) == null) updateFailedParticipants(p);
+            }
+
         }
 
     }
@@ -379,10 +825,12 @@ public class Participant {
                     }
                     return new OptionsToken(request, options.toString());
                 case("VOTE"):
-                    String[] votes = request.split(" ");
-                    String port = votes[votes.length-2];
-                    String option = votes[votes.length-1];
-                    return new VoteToken(request, port, option);
+                    Map<String,String> votes = new LinkedHashMap<>();
+                    while(sTok.hasMoreTokens()) {
+                        String port = sTok.nextToken();
+                        if(sTok.hasMoreTokens()) votes.put(port, sTok.nextToken());
+                    }
+                    return new VoteToken(request, votes);
                 case("FINISH"):
                     return new FinishToken(request);
                 case("RESTART"):
@@ -422,13 +870,11 @@ public class Participant {
 
     private class VoteToken extends Token {
 
-        String port;
-        String option;
+        Map<String,String> votes;
 
-        VoteToken(String request, String port, String option) {
+        VoteToken(String request, Map<String,String> votes) {
             this.request = request;
-            this.port = port;
-            this.option = option;
+            this.votes = votes;
         }
     }
 
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Records every message sent and received to a binary trace file, enabled with -Dtrace=<file>
+ * A %s in the file name is replaced by the owner of the trace, e.g. -Dtrace=trace-%s.bin
+ * Messages are queued and written by a background thread so recording stays off the hot path
+ *
+ * File format (DataOutputStream):
+ *      header      int magic, int version, UTF owner ("coordinator" or the participant's port)
+ *      record      long nanoseconds since the trace started, byte direction, UTF peer,
+ *                  int length and UTF-8 bytes of the message (messages can be longer than writeUTF allows)
+ */
+class TraceRecorder {
+
+    static final byte SENT = 0;
+    static final byte RECEIVED = 1;
+
+    private static final int MAGIC = 0x43545243;                    // "CTRC"
+    private static final int VERSION = 1;
+    private static final String TRACE_FILE = System.getProperty("trace");
+
+    private static final Record END = new Record(0, (byte) -1, "", "");   // Queued on exit to stop the writing thread
+
+    private static volatile TraceRecorder recorder;                 // Recorder of this process, null if not recording
+
+    private final long start = System.nanoTime();
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final DataOutputStream out;
+    private final Thread writer;
+
+    /**
+     * Starts recording if a trace file is given
+     * @param owner     "coordinator" or the port of the participant
+     */
+    static synchronized void open(String owner) {
+
+        if(TRACE_FILE == null || recorder != null) return;
+
+        try {
+            recorder = new TraceRecorder(TRACE_FILE.replace("%s", owner), owner);
+        } catch(IOException e) {
+            System.out.println(String.format("Trace: [ERROR] Could not open trace file %s",TRACE_FILE));
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Records a message sent
+     * @param peer      port of the participant, or "coordinator"
+     * @param message   the message
+     */
+    static void sent(String peer, String message) {
+
+        TraceRecorder r = recorder;
+        if(r != null && message != null) r.queue.add(new Record(System.nanoTime() - r.start, SENT, peer, message));
+
+    }
+
+    /**
+     * Records a message received
+     * @param peer      port of the participant, or "coordinator"
+     * @param message   the message
+     */
+    static void received(String peer, String message) {
+
+        TraceRecorder r = recorder;
+        if(r != null && message != null) r.queue.add(new Record(System.nanoTime() - r.start, RECEIVED, peer, message));
+
+    }
+
+    /**
+     * Constructor for the recorder, starts the writing thread
+     * @param file      the trace file
+     * @param owner     "coordinator" or the port of the participant
+     * @throws IOException
+     */
+    private TraceRecorder(String file, String owner) throws IOException {
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(owner);
+
+        this.writer = new Thread(this::writeRecords);
+        writer.setDaemon(true);
+        writer.start();
+
+        // write what is left when the process exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+
+    }
+
+    /**
+     * Writes the queued records, flushing whenever the queue is empty, until END is taken
+     */
+    private void writeRecords() {
+
+        try {
+            for(Record record = queue.take(); record != END; record = queue.take()) {
+                record.write(out);
+                if(queue.isEmpty()) out.flush();
+            }
+            out.close();
+        } catch(InterruptedException e) {
+            // process is exiting
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Lets the writing thread write the records still queued and close the file
+     */
+    private void close() {
+
+        queue.add(END);
+        try {
+            writer.join(1000);
+        } catch(InterruptedException e) {
+            // process is exiting
+        }
+
+    }
+
+    /**
+     * Reads a trace file
+     * @param file      the trace file
+     * @return the owner and the records of the trace
+     * @throws IOException
+     */
+    static Trace read(String file) throws IOException {
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+            if(in.readInt() != MAGIC) throw new IOException("Not a trace file: " + file);
+            int version = in.readInt();
+            if(version != VERSION) throw new IOException("Unsupported trace version: " + version);
+
+            Trace trace = new Trace(in.readUTF());
+            while(true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch(EOFException e) {
+                    return trace;
+                }
+                byte direction = in.readByte();
+                String peer = in.readUTF();
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                trace.records.add(new Record(time, direction, peer, new String(message, StandardCharsets.UTF_8)));
+            }
+        }
+
+    }
+
+    /**
+     * Owner and records of a trace file
+     */
+    static class Trace {
+
+        String owner;
+        List<Record> records = new ArrayList<>();
+
+        Trace(String owner) {
+            this.owner = owner;
+        }
+
+    }
+
+    /**
+     * A message sent or received
+     */
+    static class Record {
+
+        long time;
+        byte direction;
+        String peer;
+        String message;
+
+        Record(long time, byte direction, String peer, String message) {
+            this.time = time;
+            this.direction = direction;
+            this.peer = peer;
+            this.message = message;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(time);
+            out.writeByte(direction);
+            out.writeUTF(peer);
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+    }
+
+}
@@ -0,0 +1,36 @@
+import java.io.*;
+import java.util.*;
+
+//  TraceReplay <trace> [<iterations>]
+public class TraceReplay {
+
+    public static void main(String[] args) {
+
+        try {
+
+            TraceRecorder.Trace trace = TraceRecorder.read(args[0]);
+            int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+            List<TraceRecorder.Record> records = trace.records;
+            long recorded = records.isEmpty() ? 0 : records.get(records.size()-1).time - records.get(0).time;
+            System.out.println(String.format("Replay: [INFO] %s recorded %d messages over %.3f ms",trace.owner,records.size(),recorded / 1e6));
+
+            // replays the trace at full speed, the timestamps are only used for the recorded time
+            int decided = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < iterations; i++) {
+                if(trace.owner.equals("coordinator")) decided = Coordinator.replay(records);
+                else decided = Participant.replay(records, Integer.parseInt(trace.owner));
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println(String.format("Replay: [INFO] Replayed %d rounds %d times in %.3f ms, %.0f messages per second",
+                    decided,iterations,elapsed / 1e6,(double) records.size() * iterations / (elapsed / 1e9)));
+
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}